@@ -0,0 +1,87 @@
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+import org.apache.logging.log4j.util.Unbox;
+
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Audit records for per-key events, written to the `audit` logger (see log4j2.xml) in form
+ * `timestamp key action outcome attempt latencyMicros`.
+ *
+ * The `audit` logger is asynchronous and batched, parameters are passed without boxing so that recording doesn't
+ * produce garbage. Instead of logging every key, diagnostic log gets a summary line every `summaryIntervalSeconds`.
+ */
+public class AuditLog implements AutoCloseable {
+
+  public static final int DEFAULT_SUMMARY_INTERVAL_SECONDS = 10;
+  private static final Logger AUDIT = LogManager.getLogger("audit");
+  private static final Logger LOGGER = LogManager.getLogger(AuditLog.class.getName());
+
+  public enum Action {
+    SELECT_FOR_CANCEL,
+    CANCEL_IN_ZEEBE,
+    CANCEL_IN_OPERATE,
+    VERIFY_IN_OPERATE
+  }
+
+  public enum Outcome {
+    OK,
+    SKIPPED,
+    RETRY,
+    FAILED
+  }
+
+  private static final Action[] ACTIONS = Action.values();
+  private static final Outcome[] OUTCOMES = Outcome.values();
+
+  private final LongAdder[] counters = new LongAdder[ACTIONS.length * OUTCOMES.length];
+  private final ScheduledExecutorService summaryExecutor;
+
+  public AuditLog() {
+    this(DEFAULT_SUMMARY_INTERVAL_SECONDS);
+  }
+
+  public AuditLog(int summaryIntervalSeconds) {
+    for (int i = 0; i < counters.length; i++) {
+      counters[i] = new LongAdder();
+    }
+    summaryExecutor = Executors.newSingleThreadScheduledExecutor(r -> {
+      final Thread thread = new Thread(r, "audit-summary");
+      thread.setDaemon(true);
+      return thread;
+    });
+    summaryExecutor.scheduleAtFixedRate(this::logSummary, summaryIntervalSeconds, summaryIntervalSeconds,
+        TimeUnit.SECONDS);
+  }
+
+  public void record(long key, Action action, Outcome outcome, int attempt, long latencyMicros) {
+    counters[action.ordinal() * OUTCOMES.length + outcome.ordinal()].increment();
+    AUDIT.info("{} {} {} {} {}", Unbox.box(key), action, outcome, Unbox.box(attempt), Unbox.box(latencyMicros));
+  }
+
+  @Override
+  public void close() {
+    summaryExecutor.shutdownNow();
+    logSummary();
+  }
+
+  private void logSummary() {
+    final StringBuilder summary = new StringBuilder("Audit summary:");
+    for (Action action : ACTIONS) {
+      long total = 0;
+      final StringBuilder outcomes = new StringBuilder();
+      for (Outcome outcome : OUTCOMES) {
+        final long count = counters[action.ordinal() * OUTCOMES.length + outcome.ordinal()].sum();
+        total += count;
+        outcomes.append(' ').append(outcome).append('=').append(count);
+      }
+      if (total > 0) {
+        summary.append(' ').append(action).append(outcomes).append(';');
+      }
+    }
+    LOGGER.info(summary.toString());
+  }
+}
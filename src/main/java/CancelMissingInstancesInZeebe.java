@@ -10,6 +10,7 @@ import java.nio.file.Files;
 import java.nio.file.Paths;
 import java.util.List;
 import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.TimeUnit;
 import java.util.stream.Collectors;
 
 /**
@@ -37,28 +38,39 @@ public class CancelMissingInstancesInZeebe {
     ForkJoinPool customThreadPool = new ForkJoinPool(10);
     int maxRetries = 3;
 
-    customThreadPool.submit(() ->
-        processInstances4Removal.parallelStream().forEach(key -> {
-          boolean success = false;
-          int attempt = 0;
-          while (!success && attempt < maxRetries) {
-            attempt++;
-            try {
-              cancelProcessInstance(key);
-              LOGGER.info(key + ": CANCELLED");
-              success = true;
-            } catch (Exception e) {
-              if (attempt >= maxRetries) {
-                LOGGER.error(key + ": FAILED after " + maxRetries + " attempts. Moving on...");
-              } else {
-                LOGGER.error(key + ": FAILED with " + e.getMessage() + " Retrying...", e);
+    try (AuditLog auditLog = new AuditLog()) {
+      customThreadPool.submit(() ->
+          processInstances4Removal.parallelStream().forEach(key -> {
+            boolean success = false;
+            int attempt = 0;
+            while (!success && attempt < maxRetries) {
+              attempt++;
+              long start = System.nanoTime();
+              try {
+                cancelProcessInstance(key);
+                auditLog.record(key, AuditLog.Action.CANCEL_IN_ZEEBE, AuditLog.Outcome.OK, attempt, micros(start));
+                success = true;
+              } catch (Exception e) {
+                if (attempt >= maxRetries) {
+                  auditLog.record(key, AuditLog.Action.CANCEL_IN_ZEEBE, AuditLog.Outcome.FAILED, attempt,
+                      micros(start));
+                  LOGGER.error(key + ": FAILED after " + maxRetries + " attempts. Moving on...", e);
+                } else {
+                  auditLog.record(key, AuditLog.Action.CANCEL_IN_ZEEBE, AuditLog.Outcome.RETRY, attempt,
+                      micros(start));
+                  LOGGER.warn(key + ": FAILED with " + e.getMessage() + " Retrying...");
+                }
               }
             }
-          }
-        })
-    ).join();
+          })
+      ).join();
+    } finally {
+      customThreadPool.shutdown();
+    }
+  }
 
-    customThreadPool.shutdown();
+  private static long micros(long startNanos) {
+    return TimeUnit.NANOSECONDS.toMicros(System.nanoTime() - startNanos);
   }
 
   private static void cancelProcessInstance(Long key) throws IOException, InterruptedException {
@@ -0,0 +1,57 @@
+import com.fasterxml.jackson.core.JsonParseException;
+import com.fasterxml.jackson.core.JsonParser;
+import com.fasterxml.jackson.core.JsonToken;
+
+import java.io.IOException;
+
+/**
+ * Flow node instance as stored in `flow-node-instances-small.json`: `{"key": "...", "processInstanceKey": ...}`.
+ */
+public record FlowNodeInstanceRecord(long key, long processInstanceKey) {
+
+  /**
+   * Reads the record from parser positioned at START_OBJECT, unknown fields are skipped.
+   * Returns null for records with missing or null `key` or `processInstanceKey`, they can't be matched
+   * to any process instance. Values that are not numbers are rejected.
+   */
+  public static FlowNodeInstanceRecord read(JsonParser jsonParser) throws IOException {
+    Long key = null;
+    Long processInstanceKey = null;
+    while (jsonParser.nextToken() == JsonToken.FIELD_NAME) {
+      final String fieldName = jsonParser.getCurrentName();
+      jsonParser.nextToken();
+      switch (fieldName) {
+      case "key":
+        // key is written as string by zdb
+        key = readLong(jsonParser);
+        break;
+      case "processInstanceKey":
+        processInstanceKey = readLong(jsonParser);
+        break;
+      default:
+        jsonParser.skipChildren();
+      }
+    }
+    if (key == null || processInstanceKey == null) {
+      return null;
+    }
+    return new FlowNodeInstanceRecord(key, processInstanceKey);
+  }
+
+  private static Long readLong(JsonParser jsonParser) throws IOException {
+    switch (jsonParser.currentToken()) {
+    case VALUE_NUMBER_INT:
+      return jsonParser.getLongValue();
+    case VALUE_STRING:
+      try {
+        return Long.parseLong(jsonParser.getText());
+      } catch (NumberFormatException e) {
+        throw new JsonParseException(jsonParser, "Not a number: " + jsonParser.getText(), e);
+      }
+    case VALUE_NULL:
+      return null;
+    default:
+      throw new JsonParseException(jsonParser, "Not a number: " + jsonParser.currentToken());
+    }
+  }
+}
@@ -0,0 +1,328 @@
+import com.fasterxml.jackson.core.JsonFactory;
+import com.fasterxml.jackson.core.JsonParser;
+import com.fasterxml.jackson.core.JsonToken;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.UncheckedIOException;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.ForkJoinTask;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Consumer;
+
+/**
+ * Reads big files containing JSON arrays of objects on multiple cores.
+ *
+ * The file is first scanned for the boundaries of top level array elements and cut into byte ranges of about
+ * `chunkBytes`. The ranges are then memory-mapped and parsed in parallel, each chunk is passed to the consumer
+ * as list of typed records. The consumer is called concurrently from different threads.
+ *
+ * Compressed files (see {@link StreamCodecs}) can't be mapped. They are decompressed in parallel where the codec
+ * allows it, scanned while reading and the chunks are copied to memory in bulk before parsing.
+ *
+ * Several arrays following each other in one file (e.g. appended by jq) are read as one.
+ */
+public class JsonArrayChunkReader<T> {
+
+  // ByteBuffer can't address more than 2 GB, so the file is scanned through windows
+  private static final long SCAN_WINDOW_BYTES = 1L << 30;
+  private static final int READ_BUFFER_BYTES = 1024 * 1024;
+
+  private final JsonFactory jsonFactory;
+  private final ElementReader<T> elementReader;
+  private final int chunkBytes;
+  private final int parallelism;
+
+  public JsonArrayChunkReader(JsonFactory jsonFactory, ElementReader<T> elementReader, int chunkBytes,
+      int parallelism) {
+    this.jsonFactory = jsonFactory;
+    this.elementReader = elementReader;
+    this.chunkBytes = chunkBytes;
+    this.parallelism = parallelism;
+  }
+
+  public void read(File file, Consumer<List<T>> chunkConsumer) throws IOException {
+    final ForkJoinPool customThreadPool = new ForkJoinPool(parallelism);
+    try {
+      if (StreamCodecs.detect(file) == StreamCodecs.NONE) {
+        readMapped(file, chunkConsumer, customThreadPool);
+      } else {
+        readCompressed(file, chunkConsumer, customThreadPool);
+      }
+    } catch (UncheckedIOException e) {
+      throw e.getCause();
+    } finally {
+      // on failure chunks may still be queued or running, the consumer must not be called after return
+      customThreadPool.shutdownNow();
+      awaitTermination(customThreadPool);
+    }
+  }
+
+  private static void awaitTermination(ForkJoinPool customThreadPool) {
+    boolean interrupted = false;
+    while (true) {
+      try {
+        if (customThreadPool.awaitTermination(1, TimeUnit.MINUTES)) {
+          break;
+        }
+      } catch (InterruptedException e) {
+        interrupted = true;
+      }
+    }
+    if (interrupted) {
+      Thread.currentThread().interrupt();
+    }
+  }
+
+  private void readMapped(File file, Consumer<List<T>> chunkConsumer, ForkJoinPool customThreadPool)
+      throws IOException {
+    try (FileChannel channel = FileChannel.open(file.toPath(), StandardOpenOption.READ)) {
+      final List<long[]> chunks = findChunks(channel);
+      customThreadPool.submit(() ->
+          chunks.parallelStream().forEach(chunk -> chunkConsumer.accept(parseChunk(channel, chunk[0], chunk[1])))
+      ).join();
+    }
+  }
+
+  /**
+   * Returns [start, end) byte ranges, each starting at the beginning of an array element and ending right
+   * after the last element of the chunk.
+   */
+  private List<long[]> findChunks(FileChannel channel) throws IOException {
+    final List<long[]> chunks = new ArrayList<>();
+    final long size = channel.size();
+    final BoundaryScanner scanner = new BoundaryScanner();
+    long chunkStart = -1;
+    long lastElementEnd = -1;
+    for (long windowStart = 0; windowStart < size; windowStart += SCAN_WINDOW_BYTES) {
+      final MappedByteBuffer window = channel.map(FileChannel.MapMode.READ_ONLY, windowStart,
+          Math.min(SCAN_WINDOW_BYTES, size - windowStart));
+      final int windowSize = window.limit();
+      for (int i = 0; i < windowSize; i++) {
+        final long position = windowStart + i;
+        switch (scanner.next(window.get(i), position)) {
+        case BoundaryScanner.ELEMENT_START:
+          if (chunkStart < 0) {
+            chunkStart = position;
+          } else if (position - chunkStart >= chunkBytes) {
+            chunks.add(new long[] { chunkStart, lastElementEnd });
+            chunkStart = position;
+          }
+          break;
+        case BoundaryScanner.ELEMENT_END:
+          lastElementEnd = position + 1;
+          break;
+        case BoundaryScanner.ARRAY_END:
+          if (chunkStart >= 0) {
+            chunks.add(new long[] { chunkStart, lastElementEnd });
+            chunkStart = -1;
+          }
+          break;
+        default:
+        }
+      }
+    }
+    scanner.checkComplete(size);
+    return chunks;
+  }
+
+  private List<T> parseChunk(FileChannel channel, long start, long end) {
+    final int length = (int) (end - start);
+    final byte[] buffer = new byte[length + 2];
+    try {
+      channel.map(FileChannel.MapMode.READ_ONLY, start, length).get(buffer, 1, length);
+    } catch (IOException e) {
+      throw new UncheckedIOException("Could not read chunk [" + start + ", " + end + ")", e);
+    }
+    return parseChunk(buffer);
+  }
+
+  private void readCompressed(File file, Consumer<List<T>> chunkConsumer, ForkJoinPool customThreadPool)
+      throws IOException {
+    // limits the number of decompressed chunks held in memory
+    final Semaphore chunksInFlight = new Semaphore(parallelism * 2);
+    final List<ForkJoinTask<?>> tasks = new ArrayList<>();
+    final BoundaryScanner scanner = new BoundaryScanner();
+    final byte[] readBuffer = new byte[READ_BUFFER_BYTES];
+    final ChunkBuffer chunk = new ChunkBuffer(chunkBytes);
+    int lastElementEnd = 0;
+    long position = 0;
+    try (InputStream in = StreamCodecs.openInput(file)) {
+      int count;
+      while ((count = in.read(readBuffer)) > 0) {
+        // bytes of readBuffer from this index on belong to the current chunk, -1 outside of arrays
+        int appendFrom = chunk.length > 0 ? 0 : -1;
+        for (int i = 0; i < count; i++, position++) {
+          switch (scanner.next(readBuffer[i], position)) {
+          case BoundaryScanner.ELEMENT_START:
+            if (appendFrom < 0) {
+              appendFrom = i;
+            } else if (chunk.length + i - appendFrom >= chunkBytes) {
+              chunk.append(readBuffer, appendFrom, i);
+              tasks.add(submitChunk(chunk.bytes, lastElementEnd, chunkConsumer, customThreadPool, chunksInFlight));
+              chunk.length = 0;
+              appendFrom = i;
+            }
+            break;
+          case BoundaryScanner.ELEMENT_END:
+            lastElementEnd = chunk.length + i + 1 - appendFrom;
+            break;
+          case BoundaryScanner.ARRAY_END:
+            // nothing to append for empty arrays
+            if (appendFrom >= 0) {
+              chunk.append(readBuffer, appendFrom, i);
+            }
+            if (chunk.length > 0) {
+              tasks.add(submitChunk(chunk.bytes, lastElementEnd, chunkConsumer, customThreadPool, chunksInFlight));
+              chunk.length = 0;
+            }
+            appendFrom = -1;
+            break;
+          default:
+          }
+        }
+        if (appendFrom >= 0) {
+          chunk.append(readBuffer, appendFrom, count);
+        }
+      }
+    }
+    scanner.checkComplete(position);
+    for (ForkJoinTask<?> task : tasks) {
+      task.join();
+    }
+  }
+
+  private ForkJoinTask<?> submitChunk(byte[] chunk, int length, Consumer<List<T>> chunkConsumer,
+      ForkJoinPool customThreadPool, Semaphore chunksInFlight) throws IOException {
+    try {
+      chunksInFlight.acquire();
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+      throw new IOException("Interrupted while reading chunks", e);
+    }
+    final byte[] buffer = new byte[length + 2];
+    System.arraycopy(chunk, 0, buffer, 1, length);
+    return customThreadPool.submit(() -> {
+      try {
+        chunkConsumer.accept(parseChunk(buffer));
+      } finally {
+        chunksInFlight.release();
+      }
+    });
+  }
+
+  /**
+   * Parses elements copied to buffer[1..length-2], the first and last bytes are reserved for brackets.
+   */
+  private List<T> parseChunk(byte[] buffer) {
+    // wrap elements into array again, so that commas between them are valid JSON
+    buffer[0] = '[';
+    buffer[buffer.length - 1] = ']';
+    final List<T> records = new ArrayList<>();
+    try (JsonParser jsonParser = jsonFactory.createParser(buffer)) {
+      jsonParser.nextToken();
+      while (jsonParser.nextToken() == JsonToken.START_OBJECT) {
+        final T record = elementReader.read(jsonParser);
+        if (record != null) {
+          records.add(record);
+        }
+      }
+    } catch (IOException e) {
+      throw new UncheckedIOException("Could not parse chunk", e);
+    }
+    return records;
+  }
+
+  @FunctionalInterface
+  public interface ElementReader<T> {
+    /**
+     * Reads one element, parser is positioned at its START_OBJECT token. Returns null to skip the element.
+     */
+    T read(JsonParser jsonParser) throws IOException;
+  }
+
+  /**
+   * Decompressed bytes of the chunk being collected, grows when a chunk ends up bigger than expected.
+   */
+  private static class ChunkBuffer {
+
+    byte[] bytes;
+    int length;
+
+    ChunkBuffer(int capacity) {
+      bytes = new byte[capacity];
+    }
+
+    void append(byte[] buffer, int from, int to) {
+      final int count = to - from;
+      if (length + count > bytes.length) {
+        bytes = Arrays.copyOf(bytes, Math.max(bytes.length * 2, length + count));
+      }
+      System.arraycopy(buffer, from, bytes, length, count);
+      length += count;
+    }
+  }
+
+  /**
+   * Tracks nesting depth and strings to find where top level array elements start and end.
+   */
+  private static class BoundaryScanner {
+
+    static final int NONE = 0;
+    static final int ELEMENT_START = 1;
+    static final int ELEMENT_END = 2;
+    static final int ARRAY_END = 3;
+
+    private int depth;
+    private boolean inString;
+    private boolean escaped;
+
+    int next(byte b, long position) throws IOException {
+      if (inString) {
+        if (escaped) {
+          escaped = false;
+        } else if (b == '\\') {
+          escaped = true;
+        } else if (b == '"') {
+          inString = false;
+        }
+        return NONE;
+      }
+      switch (b) {
+      case '"':
+        inString = true;
+        return NONE;
+      case '{':
+      case '[':
+        return depth++ == 1 ? ELEMENT_START : NONE;
+      case '}':
+      case ']':
+        depth--;
+        if (depth == 1) {
+          return ELEMENT_END;
+        } else if (depth == 0) {
+          return ARRAY_END;
+        } else if (depth < 0) {
+          throw new IOException("Unbalanced JSON at position " + position);
+        }
+        return NONE;
+      default:
+        return NONE;
+      }
+    }
+
+    void checkComplete(long size) throws IOException {
+      if (depth != 0) {
+        throw new IOException("Unexpected end of JSON array, file size " + size);
+      }
+    }
+  }
+}
@@ -0,0 +1,247 @@
+import com.sun.management.HotSpotDiagnosticMXBean;
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.lang.management.ManagementFactory;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardOpenOption;
+
+/**
+ * Primitive long -> long map with open addressing (linear probing) that keeps its slots outside the Java heap.
+ *
+ * Slots live in direct buffers while the table fits into `maxOffHeapBytes`. While resizing, the old and the new
+ * table both exist, so both count against the limit. Once they don't fit, the table is rehashed into a memory-mapped
+ * file next to `spillFilePath`, so the operating system pages it to disk as needed. Each slot takes 16 bytes
+ * (key + value), the table is kept at most half full.
+ *
+ * `maxOffHeapBytes` must stay below the JVM direct memory limit, see {@link #maxDirectMemory()}.
+ *
+ * Key 0 is used as the empty slot marker internally and is stored separately.
+ *
+ * The map is not thread safe.
+ */
+public class OffHeapLongLongMap implements Closeable {
+
+  private static final Logger LOGGER = LogManager.getLogger(OffHeapLongLongMap.class.getName());
+  private static final int SLOT_BYTES = 16;
+  // 1 GB per buffer, ByteBuffer can't address more than 2 GB
+  private static final int SEGMENT_SHIFT = 26;
+  private static final long SEGMENT_SLOTS = 1L << SEGMENT_SHIFT;
+  private static final int MIN_CAPACITY = 1 << 10;
+
+  private final long maxOffHeapBytes;
+  private final String spillFilePath;
+
+  private ByteBuffer[] segments;
+  private Path mappedFile;
+  private int generation;
+  private long capacity;
+  private long mask;
+  private long size;
+  private boolean hasZeroKey;
+  private long zeroKeyValue;
+
+  public OffHeapLongLongMap(long maxOffHeapBytes, String spillFilePath) {
+    this.maxOffHeapBytes = maxOffHeapBytes;
+    this.spillFilePath = spillFilePath;
+    allocate(MIN_CAPACITY);
+  }
+
+  /**
+   * Returns direct memory limit of this JVM: -XX:MaxDirectMemorySize or max heap size when it's not set.
+   */
+  public static long maxDirectMemory() {
+    try {
+      final long limit = Long.parseLong(ManagementFactory.getPlatformMXBean(HotSpotDiagnosticMXBean.class)
+          .getVMOption("MaxDirectMemorySize").getValue());
+      if (limit > 0) {
+        return limit;
+      }
+    } catch (RuntimeException e) {
+      LOGGER.warn("Could not read MaxDirectMemorySize, using max heap size as direct memory limit.");
+    }
+    return Runtime.getRuntime().maxMemory();
+  }
+
+  public void put(long key, long value) {
+    if (key == 0) {
+      if (!hasZeroKey) {
+        hasZeroKey = true;
+        size++;
+      }
+      zeroKeyValue = value;
+      return;
+    }
+    long slot = findSlot(key);
+    if (getKey(slot) == 0) {
+      if ((size + 1) * 2 > capacity) {
+        resize(capacity * 2);
+        slot = findSlot(key);
+      }
+      setKey(slot, key);
+      size++;
+    }
+    setValue(slot, value);
+  }
+
+  public long get(long key, long defaultValue) {
+    if (key == 0) {
+      return hasZeroKey ? zeroKeyValue : defaultValue;
+    }
+    final long slot = findSlot(key);
+    return getKey(slot) == 0 ? defaultValue : getValue(slot);
+  }
+
+  public boolean containsKey(long key) {
+    if (key == 0) {
+      return hasZeroKey;
+    }
+    return getKey(findSlot(key)) != 0;
+  }
+
+  public long size() {
+    return size;
+  }
+
+  public boolean isEmpty() {
+    return size == 0;
+  }
+
+  public void forEach(EntryConsumer consumer) {
+    if (hasZeroKey) {
+      consumer.accept(0, zeroKeyValue);
+    }
+    for (long slot = 0; slot < capacity; slot++) {
+      final long key = getKey(slot);
+      if (key != 0) {
+        consumer.accept(key, getValue(slot));
+      }
+    }
+  }
+
+  @Override
+  public void close() {
+    segments = null;
+    deleteMappedFile();
+  }
+
+  /**
+   * Returns the slot holding the key or the empty slot where it should be inserted.
+   */
+  private long findSlot(long key) {
+    long slot = hash(key) & mask;
+    long current;
+    while ((current = getKey(slot)) != 0 && current != key) {
+      slot = (slot + 1) & mask;
+    }
+    return slot;
+  }
+
+  private static long hash(long key) {
+    // murmur3 finalizer, Zeebe keys differ mostly in the low bits
+    key ^= key >>> 33;
+    key *= 0xff51afd7ed558ccdL;
+    key ^= key >>> 33;
+    key *= 0xc4ceb9fe1a85ec53L;
+    key ^= key >>> 33;
+    return key;
+  }
+
+  private void resize(long newCapacity) {
+    final ByteBuffer[] oldSegments = segments;
+    final long oldCapacity = capacity;
+    final Path oldMappedFile = mappedFile;
+    allocate(newCapacity);
+    for (long slot = 0; slot < oldCapacity; slot++) {
+      final ByteBuffer segment = oldSegments[(int) (slot >>> SEGMENT_SHIFT)];
+      final int offset = (int) ((slot & (SEGMENT_SLOTS - 1)) * SLOT_BYTES);
+      final long key = segment.getLong(offset);
+      if (key != 0) {
+        final long newSlot = findSlot(key);
+        setKey(newSlot, key);
+        setValue(newSlot, segment.getLong(offset + 8));
+      }
+    }
+    if (oldMappedFile != null && !oldMappedFile.equals(mappedFile)) {
+      deleteFile(oldMappedFile);
+    }
+  }
+
+  private void allocate(long newCapacity) {
+    final long segmentSlots = Math.min(newCapacity, SEGMENT_SLOTS);
+    final int segmentBytes = (int) (segmentSlots * SLOT_BYTES);
+    final ByteBuffer[] newSegments = new ByteBuffer[(int) (newCapacity / segmentSlots)];
+    // the current table is still in use while the new one is filled
+    final long currentDirectBytes = segments != null && mappedFile == null ? capacity * SLOT_BYTES : 0;
+    if (currentDirectBytes + newCapacity * SLOT_BYTES <= maxOffHeapBytes) {
+      for (int i = 0; i < newSegments.length; i++) {
+        newSegments[i] = ByteBuffer.allocateDirect(segmentBytes);
+      }
+      mappedFile = null;
+    } else {
+      // a fresh file per generation, the previous one is still read while rehashing
+      final Path file = Paths.get(spillFilePath + "." + generation++);
+      LOGGER.info("Spilling map with " + size + " entries to " + file);
+      try (FileChannel channel = FileChannel.open(file, StandardOpenOption.CREATE, StandardOpenOption.READ,
+          StandardOpenOption.WRITE, StandardOpenOption.TRUNCATE_EXISTING)) {
+        for (int i = 0; i < newSegments.length; i++) {
+          newSegments[i] = channel.map(FileChannel.MapMode.READ_WRITE, (long) i * segmentBytes, segmentBytes);
+        }
+      } catch (IOException e) {
+        throw new RuntimeException("Could not map spill file " + file, e);
+      }
+      mappedFile = file;
+    }
+    segments = newSegments;
+    capacity = newCapacity;
+    mask = newCapacity - 1;
+  }
+
+  private long getKey(long slot) {
+    return segments[(int) (slot >>> SEGMENT_SHIFT)].getLong(offset(slot));
+  }
+
+  private long getValue(long slot) {
+    return segments[(int) (slot >>> SEGMENT_SHIFT)].getLong(offset(slot) + 8);
+  }
+
+  private void setKey(long slot, long key) {
+    segments[(int) (slot >>> SEGMENT_SHIFT)].putLong(offset(slot), key);
+  }
+
+  private void setValue(long slot, long value) {
+    segments[(int) (slot >>> SEGMENT_SHIFT)].putLong(offset(slot) + 8, value);
+  }
+
+  private static int offset(long slot) {
+    return (int) ((slot & (SEGMENT_SLOTS - 1)) * SLOT_BYTES);
+  }
+
+  private void deleteMappedFile() {
+    if (mappedFile != null) {
+      deleteFile(mappedFile);
+      mappedFile = null;
+    }
+  }
+
+  private static void deleteFile(Path file) {
+    try {
+      Files.deleteIfExists(file);
+    } catch (IOException e) {
+      // on Windows the file stays locked until the mapping is garbage collected
+      LOGGER.warn("Could not delete spill file " + file + ", remove it manually.");
+      file.toFile().deleteOnExit();
+    }
+  }
+
+  @FunctionalInterface
+  public interface EntryConsumer {
+    void accept(long key, long value);
+  }
+}
@@ -0,0 +1,175 @@
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+import org.elasticsearch.action.search.SearchRequest;
+import org.elasticsearch.action.search.SearchResponse;
+import org.elasticsearch.client.RequestOptions;
+import org.elasticsearch.client.RestHighLevelClient;
+import org.elasticsearch.index.query.QueryBuilder;
+import org.elasticsearch.search.SearchHit;
+import org.elasticsearch.search.aggregations.AggregationBuilders;
+import org.elasticsearch.search.aggregations.bucket.terms.Terms;
+import org.elasticsearch.search.aggregations.metrics.TopHits;
+import org.elasticsearch.search.builder.SearchSourceBuilder;
+import org.elasticsearch.search.sort.SortOrder;
+
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.HexFormat;
+import java.util.Map;
+import java.util.TreeMap;
+
+/**
+ * Local cache of document keys returned by scanning Operate index with the given query, grouped by partition.
+ *
+ * Zeebe keys start with partition id, so keys are only ordered within a partition and freshness is checked per
+ * partition: number of matching documents, min and max key are compared with the cached keys of the partition
+ * (see {@link #fetchState(RestHighLevelClient)}). This check can't see a key leaving and another one appearing
+ * between min and max key of the same partition at the same time, so cached keys must not be trusted to be still
+ * matching the query when acting on them, the caller has to check them again (see
+ * {@link SearchAndCancelFinishedInstances}).
+ *
+ * Cache file is named after index name and query fingerprint. Keys are sorted and delta-encoded, the file is
+ * compressed with {@link SearchForMissingInstances#INTERMEDIATE_FILES_CODEC}.
+ */
+public class OperateScanCache {
+
+  private static final Logger LOGGER = LogManager.getLogger(OperateScanCache.class.getName());
+  private static final String CACHE_FILE_PREFIX = "operate-scan-cache-";
+  private static final int FORMAT_VERSION = 2;
+  private static final int MAX_PARTITIONS = 1000;
+  private static final String PARTITIONS_AGG = "partitions";
+  private static final String MIN_KEY_AGG = "minKey";
+  private static final String MAX_KEY_AGG = "maxKey";
+
+  private final String indexName;
+  private final QueryBuilder query;
+  private final String fingerprint;
+  private final File file;
+
+  public OperateScanCache(String indexName, QueryBuilder query) {
+    this.indexName = indexName;
+    this.query = query;
+    this.fingerprint = fingerprint(indexName, query);
+    this.file = new File(CACHE_FILE_PREFIX + indexName + fingerprint.substring(0, 16) + ".bin");
+  }
+
+  /**
+   * Cheap freshness check: number of documents matching the query, min and max key per partition.
+   */
+  public Map<Integer, PartitionState> fetchState(RestHighLevelClient esClient) throws IOException {
+    final SearchRequest searchRequest =
+        new SearchRequest(indexName)
+            .source(
+                new SearchSourceBuilder()
+                    .query(query)
+                    .size(0)
+                    .aggregation(AggregationBuilders.terms(PARTITIONS_AGG).field("partitionId").size(MAX_PARTITIONS)
+                        // max aggregation returns double, which is not precise enough for Zeebe keys
+                        .subAggregation(AggregationBuilders.topHits(MIN_KEY_AGG).size(1).fetchSource(false)
+                            .sort("key", SortOrder.ASC))
+                        .subAggregation(AggregationBuilders.topHits(MAX_KEY_AGG).size(1).fetchSource(false)
+                            .sort("key", SortOrder.DESC))));
+    final SearchResponse response = esClient.search(searchRequest, RequestOptions.DEFAULT);
+    final Terms partitions = response.getAggregations().get(PARTITIONS_AGG);
+    if (partitions.getSumOfOtherDocCounts() > 0) {
+      throw new IllegalStateException("More than " + MAX_PARTITIONS + " partitions in " + indexName);
+    }
+    final Map<Integer, PartitionState> states = new TreeMap<>();
+    for (Terms.Bucket bucket : partitions.getBuckets()) {
+      states.put(bucket.getKeyAsNumber().intValue(),
+          new PartitionState(bucket.getDocCount(), topHitKey(bucket, MIN_KEY_AGG), topHitKey(bucket, MAX_KEY_AGG)));
+    }
+    return states;
+  }
+
+  /**
+   * Returns cached sorted keys per partition or null when there is no usable cache.
+   */
+  public Map<Integer, long[]> read() {
+    if (!file.exists()) {
+      return null;
+    }
+    try (DataInputStream in = new DataInputStream(StreamCodecs.openInput(file))) {
+      if (in.readInt() != FORMAT_VERSION || !in.readUTF().equals(fingerprint)) {
+        LOGGER.warn("Cache file " + file + " doesn't match the query, ignoring it.");
+        return null;
+      }
+      final Map<Integer, long[]> keysByPartition = new TreeMap<>();
+      final int partitionCount = in.readInt();
+      for (int p = 0; p < partitionCount; p++) {
+        final int partitionId = in.readInt();
+        final long[] keys = new long[in.readInt()];
+        long previous = 0;
+        for (int i = 0; i < keys.length; i++) {
+          previous += in.readLong();
+          keys[i] = previous;
+        }
+        keysByPartition.put(partitionId, keys);
+      }
+      return keysByPartition;
+    } catch (IOException e) {
+      LOGGER.warn("Could not read cache file " + file + ", ignoring it.", e);
+      return null;
+    }
+  }
+
+  /**
+   * @param keysByPartition sorted keys per partition
+   */
+  public void write(Map<Integer, long[]> keysByPartition) throws IOException {
+    final File tmpFile = new File(file.getPath() + ".tmp");
+    long total = 0;
+    try (DataOutputStream out = new DataOutputStream(
+        StreamCodecs.openOutput(tmpFile, SearchForMissingInstances.INTERMEDIATE_FILES_CODEC, false))) {
+      out.writeInt(FORMAT_VERSION);
+      out.writeUTF(fingerprint);
+      out.writeInt(keysByPartition.size());
+      for (Map.Entry<Integer, long[]> partition : keysByPartition.entrySet()) {
+        out.writeInt(partition.getKey());
+        out.writeInt(partition.getValue().length);
+        long previous = 0;
+        for (long key : partition.getValue()) {
+          out.writeLong(key - previous);
+          previous = key;
+        }
+        total += partition.getValue().length;
+      }
+    }
+    Files.move(tmpFile.toPath(), file.toPath(), StandardCopyOption.REPLACE_EXISTING);
+    LOGGER.info(total + " keys of " + indexName + " have been written to cache file " + file);
+  }
+
+  private static long topHitKey(Terms.Bucket bucket, String aggregationName) {
+    final TopHits topHits = bucket.getAggregations().get(aggregationName);
+    final SearchHit[] hits = topHits.getHits().getHits();
+    return Long.parseLong(hits[0].getId());
+  }
+
+  private static String fingerprint(String indexName, QueryBuilder query) {
+    try {
+      final MessageDigest digest = MessageDigest.getInstance("SHA-256");
+      digest.update(indexName.getBytes(StandardCharsets.UTF_8));
+      digest.update(query.toString().getBytes(StandardCharsets.UTF_8));
+      return HexFormat.of().formatHex(digest.digest());
+    } catch (NoSuchAlgorithmException e) {
+      throw new RuntimeException(e);
+    }
+  }
+
+  public record PartitionState(long docCount, long minKey, long maxKey) {
+
+    /**
+     * State of cached sorted keys, comparable with the one returned by {@link #fetchState(RestHighLevelClient)}.
+     */
+    public static PartitionState of(long[] keys) {
+      return keys.length == 0 ? null : new PartitionState(keys.length, keys[0], keys[keys.length - 1]);
+    }
+  }
+}
@@ -0,0 +1,202 @@
+import net.jpountz.lz4.LZ4Exception;
+import net.jpountz.lz4.LZ4Factory;
+import net.jpountz.lz4.LZ4SafeDecompressor;
+
+import java.io.DataInputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InterruptedIOException;
+import java.util.ArrayDeque;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+/**
+ * Decompresses LZ4 frames (https://github.com/lz4/lz4/blob/dev/doc/lz4_Frame_format.md) on multiple threads.
+ *
+ * Blocks of a frame are prefixed with their compressed size, so the frame is walked sequentially reading only
+ * the headers and the compressed bytes, and the blocks are decompressed in parallel. Decompressed blocks are
+ * returned in order, at most `parallelism * 2` blocks are held ahead of the reader.
+ *
+ * Only frames with independent blocks can be decompressed this way, which is what `LZ4FrameOutputStream`
+ * writes by default. Concatenated and skippable frames are supported. Checksums are skipped, not verified.
+ */
+public class ParallelLz4FrameInputStream extends InputStream {
+
+  private static final int FRAME_MAGIC = 0x184D2204;
+  private static final int SKIPPABLE_FRAME_MAGIC_MASK = 0xFFFFFFF0;
+  private static final int SKIPPABLE_FRAME_MAGIC = 0x184D2A50;
+  private static final int UNCOMPRESSED_BLOCK_FLAG = 0x80000000;
+
+  private static final LZ4SafeDecompressor DECOMPRESSOR = LZ4Factory.fastestInstance().safeDecompressor();
+
+  private final DataInputStream in;
+  private final ExecutorService executor;
+  private final int maxPendingBlocks;
+  private final ArrayDeque<Future<Block>> pendingBlocks = new ArrayDeque<>();
+
+  // state of the frame being walked
+  private boolean inFrame;
+  private boolean blockChecksum;
+  private boolean contentChecksum;
+  private int maxBlockSize;
+  private boolean sourceEnded;
+
+  private Block current = new Block(new byte[0], 0);
+  private int position;
+
+  public ParallelLz4FrameInputStream(InputStream in, int parallelism) {
+    this.in = new DataInputStream(in);
+    this.maxPendingBlocks = parallelism * 2;
+    this.executor = Executors.newFixedThreadPool(parallelism, r -> {
+      final Thread thread = new Thread(r, "lz4-decompress");
+      thread.setDaemon(true);
+      return thread;
+    });
+  }
+
+  @Override
+  public int read() throws IOException {
+    if (!fill()) {
+      return -1;
+    }
+    return current.data()[position++] & 0xff;
+  }
+
+  @Override
+  public int read(byte[] b, int off, int len) throws IOException {
+    if (len == 0) {
+      return 0;
+    }
+    if (!fill()) {
+      return -1;
+    }
+    final int count = Math.min(len, current.length() - position);
+    System.arraycopy(current.data(), position, b, off, count);
+    position += count;
+    return count;
+  }
+
+  @Override
+  public void close() throws IOException {
+    executor.shutdownNow();
+    in.close();
+  }
+
+  private boolean fill() throws IOException {
+    while (position == current.length()) {
+      while (pendingBlocks.size() < maxPendingBlocks && !sourceEnded) {
+        submitNextBlock();
+      }
+      final Future<Block> next = pendingBlocks.poll();
+      if (next == null) {
+        return false;
+      }
+      try {
+        current = next.get();
+      } catch (InterruptedException e) {
+        Thread.currentThread().interrupt();
+        throw new InterruptedIOException("Interrupted while decompressing");
+      } catch (ExecutionException e) {
+        throw new IOException("Could not decompress LZ4 block", e.getCause());
+      }
+      position = 0;
+    }
+    return true;
+  }
+
+  /**
+   * Reads the next block from source and submits it for decompression, or marks the source as ended.
+   */
+  private void submitNextBlock() throws IOException {
+    while (true) {
+      if (!inFrame) {
+        final byte[] magicBytes = in.readNBytes(4);
+        if (magicBytes.length == 0) {
+          sourceEnded = true;
+          return;
+        }
+        if (magicBytes.length < 4) {
+          throw new EOFException("Truncated LZ4 frame magic");
+        }
+        final int magic = toIntLE(magicBytes);
+        if (magic == FRAME_MAGIC) {
+          readFrameDescriptor();
+        } else if ((magic & SKIPPABLE_FRAME_MAGIC_MASK) == SKIPPABLE_FRAME_MAGIC) {
+          in.skipNBytes(Integer.toUnsignedLong(readIntLE()));
+        } else {
+          throw new IOException("Not an LZ4 frame, magic " + Integer.toHexString(magic));
+        }
+        continue;
+      }
+      final int blockSize = readIntLE();
+      if (blockSize == 0) {
+        // end mark
+        if (contentChecksum) {
+          in.skipNBytes(4);
+        }
+        inFrame = false;
+        continue;
+      }
+      final int length = blockSize & ~UNCOMPRESSED_BLOCK_FLAG;
+      if (length > maxBlockSize) {
+        throw new IOException("LZ4 block of " + length + " bytes exceeds max block size " + maxBlockSize);
+      }
+      final byte[] data = new byte[length];
+      in.readFully(data);
+      if (blockChecksum) {
+        in.skipNBytes(4);
+      }
+      if ((blockSize & UNCOMPRESSED_BLOCK_FLAG) != 0) {
+        pendingBlocks.add(CompletableFuture.completedFuture(new Block(data, length)));
+      } else {
+        final int blockMaxSize = maxBlockSize;
+        pendingBlocks.add(executor.submit(() -> decompress(data, blockMaxSize)));
+      }
+      return;
+    }
+  }
+
+  private void readFrameDescriptor() throws IOException {
+    final int flg = in.readUnsignedByte();
+    final int bd = in.readUnsignedByte();
+    if ((flg >>> 6) != 1) {
+      throw new IOException("Unsupported LZ4 frame version in FLG " + Integer.toHexString(flg));
+    }
+    if ((flg & 0x20) == 0) {
+      throw new IOException("LZ4 frame with linked blocks can't be decompressed in parallel");
+    }
+    blockChecksum = (flg & 0x10) != 0;
+    final boolean contentSize = (flg & 0x08) != 0;
+    contentChecksum = (flg & 0x04) != 0;
+    final boolean dictionaryId = (flg & 0x01) != 0;
+    // block max size id 4..7 means 64 KB, 256 KB, 1 MB, 4 MB
+    maxBlockSize = 1 << (8 + 2 * ((bd >>> 4) & 0x07));
+    in.skipNBytes((contentSize ? 8 : 0) + (dictionaryId ? 4 : 0) + 1);
+    inFrame = true;
+  }
+
+  private static Block decompress(byte[] data, int maxBlockSize) {
+    final byte[] decompressed = new byte[maxBlockSize];
+    try {
+      final int length = DECOMPRESSOR.decompress(data, 0, data.length, decompressed, 0, maxBlockSize);
+      return new Block(decompressed, length);
+    } catch (LZ4Exception e) {
+      throw new IllegalStateException("Corrupted LZ4 block", e);
+    }
+  }
+
+  private int readIntLE() throws IOException {
+    return Integer.reverseBytes(in.readInt());
+  }
+
+  private static int toIntLE(byte[] bytes) {
+    return (bytes[0] & 0xff) | (bytes[1] & 0xff) << 8 | (bytes[2] & 0xff) << 16 | (bytes[3] & 0xff) << 24;
+  }
+
+  private record Block(byte[] data, int length) {
+  }
+}
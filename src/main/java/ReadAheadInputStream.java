@@ -0,0 +1,97 @@
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InterruptedIOException;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+
+/**
+ * Reads the wrapped stream in a background thread, up to `blocksAhead` blocks in advance. Used to decompress
+ * intermediate files while the previous blocks are being parsed.
+ */
+public class ReadAheadInputStream extends InputStream {
+
+  private static final byte[] END = new byte[0];
+
+  private final BlockingQueue<byte[]> blocks;
+  private final Thread readerThread;
+  private volatile IOException failure;
+  private byte[] current = new byte[0];
+  private int position;
+  private boolean ended;
+
+  public ReadAheadInputStream(InputStream in, int blockBytes, int blocksAhead) {
+    this.blocks = new ArrayBlockingQueue<>(blocksAhead);
+    this.readerThread = new Thread(() -> {
+      try (in) {
+        byte[] block;
+        while ((block = in.readNBytes(blockBytes)).length > 0) {
+          blocks.put(block);
+        }
+      } catch (IOException e) {
+        failure = e;
+      } catch (InterruptedException e) {
+        // closed by consumer
+        return;
+      }
+      try {
+        blocks.put(END);
+      } catch (InterruptedException e) {
+        Thread.currentThread().interrupt();
+      }
+    }, "read-ahead");
+    this.readerThread.setDaemon(true);
+    this.readerThread.start();
+  }
+
+  @Override
+  public int read() throws IOException {
+    if (!fill()) {
+      return -1;
+    }
+    return current[position++] & 0xff;
+  }
+
+  @Override
+  public int read(byte[] b, int off, int len) throws IOException {
+    if (len == 0) {
+      return 0;
+    }
+    if (!fill()) {
+      return -1;
+    }
+    final int count = Math.min(len, current.length - position);
+    System.arraycopy(current, position, b, off, count);
+    position += count;
+    return count;
+  }
+
+  @Override
+  public void close() {
+    readerThread.interrupt();
+  }
+
+  private boolean fill() throws IOException {
+    while (position == current.length) {
+      if (ended) {
+        return false;
+      }
+      final byte[] next;
+      try {
+        next = blocks.take();
+      } catch (InterruptedException e) {
+        Thread.currentThread().interrupt();
+        throw new InterruptedIOException("Interrupted while waiting for data");
+      }
+      if (next == END) {
+        ended = true;
+        if (failure != null) {
+          throw failure;
+        }
+        return false;
+      }
+      current = next;
+      position = 0;
+    }
+    return true;
+  }
+}
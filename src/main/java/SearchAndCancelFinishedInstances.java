@@ -2,7 +2,10 @@
 import com.fasterxml.jackson.databind.ObjectMapper;
 import org.apache.logging.log4j.LogManager;
 import org.apache.logging.log4j.Logger;
+import org.elasticsearch.action.admin.indices.refresh.RefreshRequest;
 import org.elasticsearch.action.search.ClearScrollRequest;
+import org.elasticsearch.action.search.MultiSearchRequest;
+import org.elasticsearch.action.search.MultiSearchResponse;
 import org.elasticsearch.action.search.SearchRequest;
 import org.elasticsearch.action.search.SearchResponse;
 import org.elasticsearch.action.search.SearchScrollRequest;
@@ -16,7 +19,10 @@ import org.elasticsearch.index.reindex.DeleteByQueryRequest;
 import org.elasticsearch.index.reindex.UpdateByQueryRequest;
 import org.elasticsearch.script.Script;
 import org.elasticsearch.script.ScriptType;
+import org.elasticsearch.search.SearchHit;
 import org.elasticsearch.search.SearchHits;
+import org.elasticsearch.search.aggregations.AggregationBuilders;
+import org.elasticsearch.search.aggregations.bucket.terms.Terms;
 import org.elasticsearch.search.builder.SearchSourceBuilder;
 import org.elasticsearch.search.sort.SortOrder;
 
@@ -24,10 +30,17 @@ import java.io.*;
 import java.nio.file.Files;
 import java.nio.file.Paths;
 import java.util.*;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
 import java.util.function.Consumer;
 import java.util.function.Function;
 import java.util.stream.Collectors;
 import java.util.stream.IntStream;
+import java.util.stream.LongStream;
 import java.util.stream.Stream;
 
 import static org.elasticsearch.index.query.QueryBuilders.*;
@@ -36,12 +49,15 @@ import static org.elasticsearch.index.query.QueryBuilders.*;
  * This class will search for process instances that exist in Operate but does not exist in Zeebe.
  * It will use the `process-instances` file generated in class SearchForMissingInstances as source of Zeebe data.
  * It will then iterate through old process instances from Operate to check whether they are present in Zeebe data.
- * This class will also cancel found instances in Operate.
+ * Keys of old process instances from Operate are cached locally between runs, see {@link OperateScanCache}.
+ * This class will also cancel found instances in Operate. Each batch is verified after the update, instances that
+ * are still active are retried, the ones that could not be cancelled are written to a separate file.
  */
 public class SearchAndCancelFinishedInstances {
 
   private static final Logger LOGGER = LogManager.getLogger(SearchAndCancelFinishedInstances.class.getName());
   private static final String PROCESS_INSTANCES_2_CANCEL_IN_OPERATE_FILE_PATH = "process-instances-2-cancel-in-operate";
+  private static final String PROCESS_INSTANCES_FAILED_TO_CANCEL_IN_OPERATE_FILE_PATH = "process-instances-failed-to-cancel-in-operate";
   public static final String OPERATE_LIST_VIEW_MAIN = "operate-list-view-8.3.0_";
   public static final String OPERATE_FLOW_NODE_INSTANCES_MAIN = "operate-flownode-instance-8.3.1_";
   public static final String OPERATE_INCIDENT_MAIN = "operate-incident-8.3.1_";
@@ -51,8 +67,11 @@ public class SearchAndCancelFinishedInstances {
   private static final String ES_USERNAME = "user-rw";
   private static final String ES_PASSWORD = "<...>";
   private static final int BATCH_SIZE = 1000;
+  private static final int MAX_CANCEL_ATTEMPTS = 3;
+  private static final String ACTIVE_KEYS_AGG = "activeKeys";
   private RestHighLevelClient esClient;
   private List<Long> keysForCancellation  = new ArrayList<>();
+  private AuditLog auditLog;
 
   public static void main(String[] args) throws Exception {
     try {
@@ -65,12 +84,15 @@ public class SearchAndCancelFinishedInstances {
 
   private void execute() throws IOException {
     createEsClient();
+    auditLog = new AuditLog();
+    try {
+      selectKeys2Cancel();
 
-    selectKeys2Cancel();
-
-    markInstancesAsCancelled();
-
-    closeEsClient();
+      markInstancesAsCancelled();
+    } finally {
+      auditLog.close();
+      closeEsClient();
+    }
   }
 
   private void markInstancesAsCancelled() throws IOException {
@@ -81,36 +103,198 @@ public class SearchAndCancelFinishedInstances {
 
     // https://confluence.camunda.com/display/HAN/Cancel+process+instances
 
+    List<Long> keys2Process = keysForCancellation;
+    // keys whose cancellation has been started, they are retried even when the process instance isn't active anymore
+    Set<Long> startedKeys = new HashSet<>();
+    // verification of a batch runs while the next batch is being written
+    ExecutorService verificationExecutor = Executors.newSingleThreadExecutor();
+    try {
+      for (int attempt = 1; attempt <= MAX_CANCEL_ATTEMPTS && !keys2Process.isEmpty(); attempt++) {
+        keys2Process = cancelAndVerify(keys2Process, startedKeys, attempt, verificationExecutor);
+        if (!keys2Process.isEmpty()) {
+          LOGGER.warn(keys2Process.size() + " process instances are still active after attempt " + attempt + ".");
+        }
+      }
+    } finally {
+      verificationExecutor.shutdown();
+    }
+
+    Files.write(Paths.get(PROCESS_INSTANCES_FAILED_TO_CANCEL_IN_OPERATE_FILE_PATH),
+        keys2Process.stream().map(String::valueOf).collect(Collectors.toList()));
+    if (!keys2Process.isEmpty()) {
+      LOGGER.error(keys2Process.size() + " process instances could not be cancelled, keys are written to "
+          + PROCESS_INSTANCES_FAILED_TO_CANCEL_IN_OPERATE_FILE_PATH);
+    }
+  }
+
+  /**
+   * Cancels process instances in batches and verifies each batch. Returns keys that are still active.
+   *
+   * Keys may come from a stale scan cache, so before their first cancellation keys whose process instance is not
+   * active anymore are dropped from the batch and none of the cancellation steps touches them.
+   */
+  private List<Long> cancelAndVerify(List<Long> keys2Process, Set<Long> startedKeys, int attempt,
+      ExecutorService verificationExecutor) throws IOException {
+    final Queue<Long> retryQueue = new ConcurrentLinkedQueue<>();
+    final List<Future<?>> verifications = new ArrayList<>();
+    final boolean lastAttempt = attempt == MAX_CANCEL_ATTEMPTS;
+
     // iterate through process instance keys in batches
     int batchSize = BATCH_SIZE;
 
-    IntStream.range(0, (keysForCancellation.size() + batchSize - 1) / batchSize)
-        .mapToObj(i -> keysForCancellation.subList(i * batchSize, Math.min(keysForCancellation.size(), (i + 1) * batchSize)))
-        .forEach(keys -> {
-          LOGGER.info("Processing process instances with keys: " + keys);
-          cancelProcessInstancesBatch(keys);
-          cancelFlowNodeInstancesInListView(keys);
-          cancelFlowNodeInstances(keys);
-          resolveIncidents(keys);
-          deletePostImporterQueue(keys);
+    IntStream.range(0, (keys2Process.size() + batchSize - 1) / batchSize)
+        .mapToObj(i -> keys2Process.subList(i * batchSize, Math.min(keys2Process.size(), (i + 1) * batchSize)))
+        .forEach(batch -> {
+          long start = System.nanoTime();
+          AuditLog.Outcome outcome = AuditLog.Outcome.OK;
+          List<Long> keys = batch;
+          try {
+            keys = dropNotActive(batch, startedKeys, attempt, start);
+            if (keys.isEmpty()) {
+              return;
+            }
+            startedKeys.addAll(keys);
+            final List<Long> keys2Cancel = keys;
+            cancelProcessInstancesBatch(keys2Cancel);
+            cancelFlowNodeInstancesInListView(keys2Cancel);
+            cancelFlowNodeInstances(keys2Cancel);
+            resolveIncidents(keys2Cancel);
+            deletePostImporterQueue(keys2Cancel);
+            verifications.add(verificationExecutor.submit(() -> verifyBatch(keys2Cancel, attempt, retryQueue)));
+          } catch (RuntimeException e) {
+            LOGGER.error("Could not cancel batch of " + keys.size() + " process instances.", e);
+            outcome = lastAttempt ? AuditLog.Outcome.FAILED : AuditLog.Outcome.RETRY;
+            retryQueue.addAll(keys);
+          } finally {
+            long latency = TimeUnit.NANOSECONDS.toMicros(System.nanoTime() - start);
+            for (Long key : keys) {
+              auditLog.record(key, AuditLog.Action.CANCEL_IN_OPERATE, outcome, attempt, latency);
+            }
+          }
         });
+
+    for (Future<?> verification : verifications) {
+      try {
+        verification.get();
+      } catch (InterruptedException e) {
+        Thread.currentThread().interrupt();
+        throw new IOException("Interrupted while waiting for verification", e);
+      } catch (ExecutionException e) {
+        throw new IOException("Verification failed", e.getCause());
+      }
+    }
+    return new ArrayList<>(retryQueue);
+  }
+
+  /**
+   * Returns keys of the batch that are either already being cancelled or whose process instance is still active,
+   * the other keys are recorded as skipped.
+   */
+  private List<Long> dropNotActive(List<Long> keys, Set<Long> startedKeys, int attempt, long start) {
+    List<Long> keys2Check = keys.stream().filter(key -> !startedKeys.contains(key)).collect(Collectors.toList());
+    if (keys2Check.isEmpty()) {
+      return keys;
+    }
+    Set<Long> activeKeys = new HashSet<>();
+    try {
+      SearchResponse response = esClient.search(activeKeysRequest(OPERATE_LIST_VIEW_MAIN, keys2Check,
+          termQuery("joinRelation", "processInstance"), termQuery("state", "ACTIVE")), RequestOptions.DEFAULT);
+      Terms terms = response.getAggregations().get(ACTIVE_KEYS_AGG);
+      for (Terms.Bucket bucket : terms.getBuckets()) {
+        activeKeys.add(bucket.getKeyAsNumber().longValue());
+      }
+    } catch (IOException e) {
+      throw new RuntimeException(e);
+    }
+
+    List<Long> keys2Cancel = new ArrayList<>();
+    long latency = TimeUnit.NANOSECONDS.toMicros(System.nanoTime() - start);
+    for (Long key : keys) {
+      if (startedKeys.contains(key) || activeKeys.contains(key)) {
+        keys2Cancel.add(key);
+      } else {
+        auditLog.record(key, AuditLog.Action.CANCEL_IN_OPERATE, AuditLog.Outcome.SKIPPED, attempt, latency);
+      }
+    }
+    if (keys2Cancel.size() < keys.size()) {
+      LOGGER.info((keys.size() - keys2Cancel.size()) + " process instances are not active anymore, skipping them.");
+    }
+    return keys2Cancel;
+  }
+
+  /**
+   * Refreshes the indices and checks with one _msearch which keys of the batch are still active in list view,
+   * flow node instance or incident index and puts them to retry queue.
+   */
+  private void verifyBatch(List<Long> keys, int attempt, Queue<Long> retryQueue) {
+    long start = System.nanoTime();
+    final MultiSearchRequest request = new MultiSearchRequest()
+        .add(activeKeysRequest(OPERATE_LIST_VIEW_MAIN, keys,
+            termQuery("joinRelation", "processInstance"), termQuery("state", "ACTIVE")))
+        .add(activeKeysRequest(OPERATE_LIST_VIEW_MAIN, keys,
+            termQuery("joinRelation", "activity"), termQuery("activityState", "ACTIVE")))
+        .add(activeKeysRequest(OPERATE_FLOW_NODE_INSTANCES_MAIN, keys, termQuery("state", "ACTIVE")))
+        .add(activeKeysRequest(OPERATE_INCIDENT_MAIN, keys, termQuery("state", "ACTIVE")));
+
+    Set<Long> activeKeys = new HashSet<>();
+    try {
+      // make updates of the batch visible to search
+      esClient.indices().refresh(
+          new RefreshRequest(OPERATE_LIST_VIEW_MAIN, OPERATE_FLOW_NODE_INSTANCES_MAIN, OPERATE_INCIDENT_MAIN),
+          RequestOptions.DEFAULT);
+      MultiSearchResponse response = esClient.msearch(request, RequestOptions.DEFAULT);
+      for (MultiSearchResponse.Item item : response.getResponses()) {
+        if (item.isFailure()) {
+          throw item.getFailure();
+        }
+        Terms terms = item.getResponse().getAggregations().get(ACTIVE_KEYS_AGG);
+        for (Terms.Bucket bucket : terms.getBuckets()) {
+          activeKeys.add(bucket.getKeyAsNumber().longValue());
+        }
+      }
+    } catch (Exception e) {
+      LOGGER.error("Could not verify batch of " + keys.size() + " process instances, will retry all of them.", e);
+      activeKeys.addAll(keys);
+    }
+
+    long latency = TimeUnit.NANOSECONDS.toMicros(System.nanoTime() - start);
+    AuditLog.Outcome failedOutcome = attempt == MAX_CANCEL_ATTEMPTS ? AuditLog.Outcome.FAILED : AuditLog.Outcome.RETRY;
+    for (Long key : keys) {
+      boolean active = activeKeys.contains(key);
+      auditLog.record(key, AuditLog.Action.VERIFY_IN_OPERATE, active ? failedOutcome : AuditLog.Outcome.OK, attempt,
+          latency);
+    }
+    retryQueue.addAll(activeKeys);
+  }
+
+  /**
+   * Returns only distinct process instance keys of matching documents, no hits.
+   */
+  private SearchRequest activeKeysRequest(String indexName, List<Long> keys, QueryBuilder... filters) {
+    QueryBuilder[] queries = Arrays.copyOf(filters, filters.length + 1);
+    queries[filters.length] = termsQuery("processInstanceKey", keys);
+    return new SearchRequest(indexName)
+        .source(
+            new SearchSourceBuilder()
+                .query(joinWithAnd(queries))
+                .size(0)
+                .aggregation(AggregationBuilders.terms(ACTIVE_KEYS_AGG).field("processInstanceKey").size(keys.size())));
   }
 
   private void cancelProcessInstancesBatch(List<Long> keys) {
     try {
       // update process instances in list-view
+      // only active instances, an instance may still finish after the check in dropNotActive
       UpdateByQueryRequest request = new UpdateByQueryRequest(OPERATE_LIST_VIEW_MAIN).setQuery(
-          joinWithAnd(termQuery("joinRelation", "processInstance"), termsQuery("processInstanceKey", keys)));
+          joinWithAnd(termQuery("joinRelation", "processInstance"),
+              termQuery("state", "ACTIVE"),
+              termsQuery("processInstanceKey", keys)));
       request.setScript(new Script(ScriptType.INLINE, "painless",
           "ctx._source.state = 'CANCELED'; ctx._source.incident = false; ctx._source.endDate = '" + END_DATE + "';",
           Collections.emptyMap()));
       request.setConflicts("proceed");
 
-      BulkByScrollResponse bulkResponse = esClient.updateByQuery(request, RequestOptions.DEFAULT);
-      long updated = bulkResponse.getUpdated();
-      if (updated < keys.size()) {
-        LOGGER.warn("Not all process instances were updated. Keys: " + keys);
-      }
+      esClient.updateByQuery(request, RequestOptions.DEFAULT);
     } catch (IOException e) {
       throw new RuntimeException(e);
     }
@@ -127,11 +311,7 @@ public class SearchAndCancelFinishedInstances {
           Collections.emptyMap()));
       request.setConflicts("proceed");
 
-      BulkByScrollResponse bulkResponse = esClient.updateByQuery(request, RequestOptions.DEFAULT);
-      long updated = bulkResponse.getUpdated();
-      if (updated < keys.size()) {
-        LOGGER.warn("Not all flow node instances in list view were updated. Keys: " + keys);
-      }
+      esClient.updateByQuery(request, RequestOptions.DEFAULT);
     } catch (IOException e) {
       throw new RuntimeException(e);
     }
@@ -147,11 +327,7 @@ public class SearchAndCancelFinishedInstances {
           Collections.emptyMap()));
       request.setConflicts("proceed");
 
-      BulkByScrollResponse bulkResponse = esClient.updateByQuery(request, RequestOptions.DEFAULT);
-      long updated = bulkResponse.getUpdated();
-      if (updated < keys.size()) {
-        LOGGER.warn("Not all flow node instances were updated. Keys: " + keys);
-      }
+      esClient.updateByQuery(request, RequestOptions.DEFAULT);
     } catch (IOException e) {
       throw new RuntimeException(e);
     }
@@ -196,29 +372,89 @@ public class SearchAndCancelFinishedInstances {
     ObjectMapper objectMapper = new ObjectMapper();
     Set<Long> zeebePIs = Files.lines(Paths.get(SearchForMissingInstances.PROCESS_INSTANCES_FILE_PATH)).map(Long::parseLong)
         .collect(Collectors.toSet());
+    final QueryBuilder query = joinWithAnd(termQuery("joinRelation", "processInstance"),
+        termQuery("state", "ACTIVE"),
+        rangeQuery("startDate").lt("now-3M"),
+        rangeQuery("partitionId").gte(35));
+
+    for (long key : scanKeysWithCache(OPERATE_LIST_VIEW_MAIN, query)) {
+      if (!zeebePIs.contains(key)) {
+        auditLog.record(key, AuditLog.Action.SELECT_FOR_CANCEL, AuditLog.Outcome.OK, 1, 0);
+        keysForCancellation.add(key);
+      }
+    }
+    File outputFile = new File(PROCESS_INSTANCES_2_CANCEL_IN_OPERATE_FILE_PATH + ".json");
+    objectMapper.writeValue(outputFile, keysForCancellation);
+    Files.write(Paths.get(PROCESS_INSTANCES_2_CANCEL_IN_OPERATE_FILE_PATH),
+        keysForCancellation.stream().map(String::valueOf).collect(Collectors.toList()));
+    LOGGER.info("Process instances for cancellation has been written to the file as JSON.");
+  }
+
+  /**
+   * Returns sorted keys of documents matching the query, partition by partition. Keys of a partition are taken
+   * from local cache when its state (doc count, min and max key) hasn't changed since the last scan. When only new
+   * keys appeared above the cached max key of the partition, just those are fetched. Otherwise the partition is
+   * scanned again.
+   */
+  private long[] scanKeysWithCache(String indexName, QueryBuilder query) throws IOException {
+    final OperateScanCache cache = new OperateScanCache(indexName, query);
+    final Map<Integer, OperateScanCache.PartitionState> states = cache.fetchState(esClient);
+    Map<Integer, long[]> cached = cache.read();
+    if (cached == null) {
+      cached = Collections.emptyMap();
+    }
+    final Map<Integer, long[]> keysByPartition = new TreeMap<>();
+    int reused = 0;
+    int updated = 0;
+    int scanned = 0;
+    for (Map.Entry<Integer, OperateScanCache.PartitionState> partition : states.entrySet()) {
+      final int partitionId = partition.getKey();
+      final OperateScanCache.PartitionState state = partition.getValue();
+      final long[] cachedKeys = cached.getOrDefault(partitionId, new long[0]);
+      final OperateScanCache.PartitionState cachedState = OperateScanCache.PartitionState.of(cachedKeys);
+      final QueryBuilder partitionQuery = joinWithAnd(query, termQuery("partitionId", partitionId));
+      if (state.equals(cachedState)) {
+        keysByPartition.put(partitionId, cachedKeys);
+        reused++;
+        continue;
+      }
+      if (cachedState != null && state.minKey() == cachedState.minKey() && state.maxKey() > cachedState.maxKey()) {
+        final long[] newKeys = scanKeys(indexName,
+            joinWithAnd(partitionQuery, rangeQuery("key").gt(cachedState.maxKey())));
+        final long[] keys = LongStream.concat(Arrays.stream(cachedKeys), Arrays.stream(newKeys)).toArray();
+        if (OperateScanCache.PartitionState.of(keys).equals(state)) {
+          keysByPartition.put(partitionId, keys);
+          updated++;
+          continue;
+        }
+      }
+      keysByPartition.put(partitionId, scanKeys(indexName, partitionQuery));
+      scanned++;
+    }
+    LOGGER.info("Scan cache of " + indexName + ": " + reused + " partitions up to date, " + updated
+        + " updated with new keys, " + scanned + " scanned.");
+    if (reused < states.size() || cached.size() != states.size()) {
+      cache.write(keysByPartition);
+    }
+    return keysByPartition.values().stream().flatMapToLong(Arrays::stream).sorted().toArray();
+  }
+
+  private long[] scanKeys(String indexName, QueryBuilder query) throws IOException {
     final SearchRequest searchRequest =
-        new SearchRequest(OPERATE_LIST_VIEW_MAIN)
+        new SearchRequest(indexName)
             .source(
                 new SearchSourceBuilder()
-                    .query(joinWithAnd(termQuery("joinRelation", "processInstance"),
-                        termQuery("state", "ACTIVE"),
-                        rangeQuery("startDate").lt("now-3M"),
-                        rangeQuery("partitionId").gte(35)))
+                    .query(query)
                     .fetchSource(false)
                     .size(1000)
                     .sort("key", SortOrder.ASC));
-
+    final LongStream.Builder keys = LongStream.builder();
     scroll(searchRequest, esClient, sh -> {
-      List<Long> keys = map(Arrays.stream(sh.getHits()), (hit) -> Long.valueOf(hit.getId()));
-      keys.removeAll(zeebePIs);
-      LOGGER.info("Keys for cancellation: " + keys);
-      keysForCancellation.addAll(keys);
+      for (SearchHit hit : sh.getHits()) {
+        keys.add(Long.parseLong(hit.getId()));
+      }
     });
-    File outputFile = new File(PROCESS_INSTANCES_2_CANCEL_IN_OPERATE_FILE_PATH + ".json");
-    objectMapper.writeValue(outputFile, keysForCancellation);
-    Files.write(Paths.get(PROCESS_INSTANCES_2_CANCEL_IN_OPERATE_FILE_PATH),
-        keysForCancellation.stream().map(String::valueOf).collect(Collectors.toList()));
-    LOGGER.info("Process instances for cancellation has been written to the file as JSON.");
+    return keys.build().sorted().toArray();
   }
 
   private void closeEsClient() {
@@ -1,3 +1,5 @@
+import com.fasterxml.jackson.core.JsonEncoding;
+import com.fasterxml.jackson.core.JsonGenerator;
 import com.fasterxml.jackson.core.JsonParser;
 import com.fasterxml.jackson.core.JsonToken;
 import com.fasterxml.jackson.core.type.TypeReference;
@@ -23,21 +25,30 @@ import java.util.stream.Collectors;
  * 
  * The output will be file `process-instances-4-removal` as well as `varNameVars-4-removal`.
  *
- * The class will also store intermediate data in separate files.
- * 
+ * The class will also store intermediate data in separate files. Intermediate files are compressed
+ * with {@link #INTERMEDIATE_FILES_CODEC}, on reading the codec is detected from file header.
+ *
  */
 public class SearchForMissingInstances {
 
   private static final Logger LOGGER = LogManager.getLogger(SearchForMissingInstances.class.getName());
   public static final String DIRECTORY_PATH = "C:\\Users\\SvetlanaDorokhova\\Documents\\operate\\SUPPORT-22102\\cancel\\20240815-zeebe-data\\usr\\local\\zeebe\\data\\";
   public static final String PROCESS_INSTANCES_FILE_PATH = "process-instances";
+  public static final String VARIABLES_FILE_PATH = "variables.json";
   public static final String FLOW_NODE_INSTANCES_FILE_PATH = "flow-node-instances.json";
   public static final String FLOW_NODE_INSTANCES_SMALL_FILE_PATH = "flow-node-instances-small.json";
   public static final String VAR_NAME_VARS_FILE_PATH = "varNameVars.json";
   public static final String PROCESS_INSTANCES_4_REMOVAL_FILE_PATH = "process-instances-4-removal";
   public static final String FLOW_NODE_INSTANCES_4_REMOVAL_FILE_PATH = "flow-node-instances-4-removal.json";
   public static final String VAR_NAME_VARS_4_REMOVAL_FILE_PATH = "varNameVars-4-removal.json";
+  public static final String FLOW_NODE_INSTANCES_4_REMOVAL_SPILL_FILE_PATH = "flow-node-instances-4-removal.map";
+  // above this size the flow node instance -> process instance map is moved to a memory-mapped file,
+  // by default half of the direct memory limit is used, the rest is left for NIO buffers
+  private static final long FLOW_NODE_INSTANCES_MAX_OFF_HEAP_BYTES =
+      Long.getLong("flowNodeInstances.maxOffHeapBytes", OffHeapLongLongMap.maxDirectMemory() / 2);
+  private static final int FLOW_NODE_INSTANCES_CHUNK_BYTES = 64 * 1024 * 1024;
   private static final URL PR_INST_BATCH_FILE_URL = SearchForMissingInstances.class.getResource("pr-inst.bat");
+  public static final StreamCodec INTERMEDIATE_FILES_CODEC = StreamCodecs.LZ4;
   private static final String ZDB_PATH = "java -jar C:\\programs\\zdb\\zdb.jar";
   private static final Map<Long, Long> LOST_INSTANCES_KEYS = new HashMap<>();
 
@@ -64,7 +75,8 @@ public class SearchForMissingInstances {
   }
 
   private List<Long> processInstances4Removal = new ArrayList<>();
-  private Map<String, Long> flowNodeInstances4Removal = new HashMap<>();
+  private OffHeapLongLongMap flowNodeInstances4Removal =
+      new OffHeapLongLongMap(FLOW_NODE_INSTANCES_MAX_OFF_HEAP_BYTES, FLOW_NODE_INSTANCES_4_REMOVAL_SPILL_FILE_PATH);
   private List<Map<String, Object>> varNames4Removal = new ArrayList<>();
 
   public static void main(String[] args) throws Exception {
@@ -115,6 +127,8 @@ public class SearchForMissingInstances {
 
     } catch (IOException e) {
       e.printStackTrace();
+    } finally {
+      flowNodeInstances4Removal.close();
     }
 
   }
@@ -125,20 +139,20 @@ public class SearchForMissingInstances {
       ObjectMapper objectMapper = new ObjectMapper();
       //read flow node instances for removal
       if (flowNodeInstances4Removal.isEmpty()) {
-        File jsonFile = new File(FLOW_NODE_INSTANCES_4_REMOVAL_FILE_PATH);
-        flowNodeInstances4Removal = objectMapper.readValue(jsonFile, new TypeReference<>() {
-        });
+        readFlowNodeInstances4Removal(objectMapper);
+      }
+      List<Map<String, Object>> dataList;
+      try (InputStream in = StreamCodecs.openInput(new File(VAR_NAME_VARS_FILE_PATH))) {
+        dataList = objectMapper.readValue(in, new TypeReference<>() {});
       }
-      File jsonFile = new File(VAR_NAME_VARS_FILE_PATH);
-      List<Map<String, Object>> dataList = objectMapper.readValue(jsonFile, new TypeReference<>() {});
       for (Map<String, Object> data : dataList) {
-        String scopeKey = ((String) data.get("key")).split(":")[0];
-        if (flowNodeInstances4Removal.keySet().contains(scopeKey)) {
+        long scopeKey = parseScopeKey((String) data.get("key"));
+        if (flowNodeInstances4Removal.containsKey(scopeKey)) {
           String valueBase64 = (String)((Map)data.get("value")).get("value");
           String value = new String(Base64.getDecoder().decode(valueBase64.getBytes()));
           varNames4Removal.add(Map.of("key", ((Map) data.get("value")).get("key"),
-              "processInstanceKey", flowNodeInstances4Removal.get(scopeKey),
-              "flowNodeInstanceKey", scopeKey,
+              "processInstanceKey", flowNodeInstances4Removal.get(scopeKey, -1),
+              "flowNodeInstanceKey", String.valueOf(scopeKey),
               "valueBase64", valueBase64,
               "value", value));
         }
@@ -163,47 +177,84 @@ public class SearchForMissingInstances {
       File jsonFile = new File(FLOW_NODE_INSTANCES_SMALL_FILE_PATH);
 //      List<Map<String, Object>> dataList = objectMapper.readValue(jsonFile, new TypeReference<>() {
 //      });
-      final int batchSize = 500000;
-      try (FileInputStream fileInputStream = new FileInputStream(jsonFile);
-          JsonParser jsonParser = objectMapper.getFactory().createParser(fileInputStream)) {
-
-        if (jsonParser.nextToken() == JsonToken.START_ARRAY) {
-          List<Map<String, Object>> batch = new ArrayList<>();
-          while (jsonParser.nextToken() != JsonToken.END_ARRAY) {
-            Map<String, Object> record = objectMapper.readValue(jsonParser, new TypeReference<>() {
-            });
-            batch.add(record);
-            if (batch.size() >= batchSize) {
-              processBatch(batch);
-              batch.clear(); // Clear the batch after processing
-            }
-          }
-          // Process any remaining records in the last batch
-          if (!batch.isEmpty()) {
-            processBatch(batch);
-          }
-        }
-      } catch (IOException e) {
-        e.printStackTrace();
-      }
+      final Set<Long> processInstanceKeys = new HashSet<>(processInstances4Removal);
+      // chunks are parsed and filtered in parallel, on failure nothing is written
+      new JsonArrayChunkReader<>(objectMapper.getFactory(), FlowNodeInstanceRecord::read,
+          FLOW_NODE_INSTANCES_CHUNK_BYTES, Runtime.getRuntime().availableProcessors())
+          .read(jsonFile, records -> processChunk(records, processInstanceKeys));
 
 //      flowNodeInstances4Removal = dataList.stream().parallel()
 //          .filter(m -> processInstances4Removal.contains(m.get("processInstanceKey"))).collect(
 //              Collectors.toMap(m -> (String) m.get("key"), m -> (Long) m.get("processInstanceKey"),
 //                  (existing, replacement) -> existing));
-      File outputFile = new File(FLOW_NODE_INSTANCES_4_REMOVAL_FILE_PATH);
-      objectMapper.writeValue(outputFile, flowNodeInstances4Removal);
+      writeFlowNodeInstances4Removal(objectMapper);
       LOGGER.info("Flow node instances for removal has been written to the file as JSON.");
     } catch (IOException e) {
       e.printStackTrace();
     }
   }
 
-  private void processBatch(List<Map<String, Object>> batch) {
-    flowNodeInstances4Removal.putAll(
-        batch.stream().parallel().filter(m -> processInstances4Removal.contains(m.get("processInstanceKey"))).collect(
-            Collectors.toMap(m -> (String) m.get("key"), m -> (Long) m.get("processInstanceKey"),
-                (existing, replacement) -> existing)));
+  private void processChunk(List<FlowNodeInstanceRecord> records, Set<Long> processInstanceKeys) {
+    final List<FlowNodeInstanceRecord> filtered = records.stream()
+        .filter(r -> processInstanceKeys.contains(r.processInstanceKey())).collect(Collectors.toList());
+    // the off-heap map is not thread safe
+    synchronized (flowNodeInstances4Removal) {
+      for (FlowNodeInstanceRecord record : filtered) {
+        // chunks come in arbitrary order, for duplicated keys one of the mappings is kept
+        if (!flowNodeInstances4Removal.containsKey(record.key())) {
+          flowNodeInstances4Removal.put(record.key(), record.processInstanceKey());
+        }
+      }
+    }
+  }
+
+  /**
+   * Writes the map in the same format as before: JSON object with flow node instance keys as field names.
+   */
+  private void writeFlowNodeInstances4Removal(ObjectMapper objectMapper) throws IOException {
+    File outputFile = new File(FLOW_NODE_INSTANCES_4_REMOVAL_FILE_PATH);
+    try (JsonGenerator jsonGenerator = objectMapper.getFactory().createGenerator(outputFile, JsonEncoding.UTF8)) {
+      jsonGenerator.writeStartObject();
+      flowNodeInstances4Removal.forEach((key, processInstanceKey) -> {
+        try {
+          jsonGenerator.writeNumberField(String.valueOf(key), processInstanceKey);
+        } catch (IOException e) {
+          throw new UncheckedIOException(e);
+        }
+      });
+      jsonGenerator.writeEndObject();
+    }
+  }
+
+  private void readFlowNodeInstances4Removal(ObjectMapper objectMapper) throws IOException {
+    File jsonFile = new File(FLOW_NODE_INSTANCES_4_REMOVAL_FILE_PATH);
+    try (JsonParser jsonParser = objectMapper.getFactory().createParser(jsonFile)) {
+      if (jsonParser.nextToken() == JsonToken.START_OBJECT) {
+        while (jsonParser.nextToken() == JsonToken.FIELD_NAME) {
+          final long key = Long.parseLong(jsonParser.getCurrentName());
+          jsonParser.nextToken();
+          flowNodeInstances4Removal.put(key, jsonParser.getLongValue());
+        }
+      }
+    }
+  }
+
+  /**
+   * Parses the scope key from variable key in form `scopeKey:varName` without creating substrings.
+   */
+  private static long parseScopeKey(String variableKey) {
+    long scopeKey = 0;
+    for (int i = 0; i < variableKey.length(); i++) {
+      final char c = variableKey.charAt(i);
+      if (c == ':') {
+        break;
+      }
+      if (c < '0' || c > '9') {
+        throw new NumberFormatException("Unexpected variable key: " + variableKey);
+      }
+      scopeKey = scopeKey * 10 + (c - '0');
+    }
+    return scopeKey;
   }
 
   private void filterProcessInstances() {
@@ -225,50 +276,72 @@ public class SearchForMissingInstances {
   }
 
   private void filterVarNameVariables() throws IOException, InterruptedException {
-    String[] command = {"jq", "[.data[] | select(.key | test(\\\"[0-9]+:varName\\\"))]", "variables.json"};
-    Process process = Runtime.getRuntime().exec(command);
-    File outputFile = new File(VAR_NAME_VARS_FILE_PATH);
-    try (BufferedReader reader = new BufferedReader(new InputStreamReader(process.getInputStream()));
-        FileWriter writer = new FileWriter(outputFile, true)) {
-      String line;
-      while ((line = reader.readLine()) != null) {
-        writer.write(line + System.lineSeparator());
-      }
-    }
-    int exitCode = process.waitFor();
+    int exitCode = runJq("[.data[] | select(.key | test(\\\"[0-9]+:varName\\\"))]", VARIABLES_FILE_PATH,
+        VAR_NAME_VARS_FILE_PATH);
     LOGGER.info("Process filterVariables exited with code: " + exitCode);
   }
 
   private void convertFlowNodeInstances() throws IOException, InterruptedException {
-    String[] command = {"jq", "[.data[] | {key: .key, processInstanceKey: .value.elementRecord.processInstanceRecord.processInstanceKey}]", FLOW_NODE_INSTANCES_FILE_PATH, ">>" + FLOW_NODE_INSTANCES_SMALL_FILE_PATH};
+    int exitCode = runJq(
+        "[.data[] | {key: .key, processInstanceKey: .value.elementRecord.processInstanceRecord.processInstanceKey}]",
+        FLOW_NODE_INSTANCES_FILE_PATH, FLOW_NODE_INSTANCES_SMALL_FILE_PATH);
+    LOGGER.info("Process convertFlowNodeInstances exited with code: " + exitCode);
+  }
+
+  /**
+   * Runs jq over (possibly compressed) input file, jq gets decompressed data on stdin and its output is
+   * appended to the output file compressed.
+   */
+  private int runJq(String filter, String inputFilePath, String outputFilePath)
+      throws IOException, InterruptedException {
+    String[] command = {"jq", filter};
     Process process = Runtime.getRuntime().exec(command);
-    BufferedReader reader = new BufferedReader(new InputStreamReader( process.getErrorStream()));
-    String line;
-    while ((line = reader.readLine()) != null) {
-      LOGGER.error(line);
+    // stdin and stderr are served by own threads, so that neither of the pipes can block jq
+    IOException[] feederFailure = new IOException[1];
+    Thread feeder = new Thread(() -> {
+      try (InputStream in = StreamCodecs.openInput(new File(inputFilePath));
+          OutputStream jqIn = process.getOutputStream()) {
+        in.transferTo(jqIn);
+      } catch (IOException e) {
+        feederFailure[0] = e;
+      }
+    }, "jq-stdin");
+    Thread errorLogger = new Thread(() -> {
+      try (BufferedReader reader = new BufferedReader(new InputStreamReader(process.getErrorStream()))) {
+        String line;
+        while ((line = reader.readLine()) != null) {
+          LOGGER.error(line);
+        }
+      } catch (IOException e) {
+        LOGGER.error("Could not read jq error output", e);
+      }
+    }, "jq-stderr");
+    feeder.start();
+    errorLogger.start();
+    try (InputStream jqOut = process.getInputStream();
+        OutputStream out = StreamCodecs.openOutput(new File(outputFilePath), INTERMEDIATE_FILES_CODEC, true)) {
+      jqOut.transferTo(out);
+    } catch (IOException e) {
+      process.destroy();
+      throw e;
+    } finally {
+      feeder.join();
+      errorLogger.join();
     }
-//    File outputFile = new File(FLOW_NODE_INSTANCES_SMALL_FILE_PATH);
-//    try (BufferedReader reader = new BufferedReader(new InputStreamReader(process.getInputStream()));
-//        FileWriter writer = new FileWriter(outputFile, true)) {
-//      String line;
-//      while ((line = reader.readLine()) != null) {
-//        writer.write(line + System.lineSeparator());
-//      }
-//    }
     int exitCode = process.waitFor();
-    LOGGER.info("Process convertFlowNodeInstances exited with code: " + exitCode);
+    if (feederFailure[0] != null) {
+      throw new IOException("Could not pass " + inputFilePath + " to jq", feederFailure[0]);
+    }
+    return exitCode;
   }
 
   private void collectVariables(String snapshotPath) throws IOException, InterruptedException {
     Process process = Runtime.getRuntime()
         .exec(ZDB_PATH + " state list -p=" + snapshotPath + " -cf=VARIABLES -kf=\"ls\"");
-    File outputFile = new File("variables.json");
-    try (BufferedReader reader = new BufferedReader(new InputStreamReader(process.getInputStream()));
-        FileWriter writer = new FileWriter(outputFile, true)) {
-      String line;
-      while ((line = reader.readLine()) != null) {
-        writer.write(line + System.lineSeparator());
-      }
+    File outputFile = new File(VARIABLES_FILE_PATH);
+    try (InputStream in = process.getInputStream();
+        OutputStream out = StreamCodecs.openOutput(outputFile, INTERMEDIATE_FILES_CODEC, true)) {
+      in.transferTo(out);
     }
     int exitCode = process.waitFor();
     LOGGER.info("Process collectVariables exited with code: " + exitCode);
@@ -289,12 +362,9 @@ public class SearchForMissingInstances {
     Process process = Runtime.getRuntime()
         .exec(ZDB_PATH + " state list -p=" + snapshotPath + " -cf=ELEMENT_INSTANCE_KEY -kf=\"l\"");
     File outputFile = new File(FLOW_NODE_INSTANCES_FILE_PATH);
-    try (BufferedReader reader = new BufferedReader(new InputStreamReader(process.getInputStream()));
-        FileWriter writer = new FileWriter(outputFile, true)) {
-      String line;
-      while ((line = reader.readLine()) != null) {
-        writer.write(line + System.lineSeparator());
-      }
+    try (InputStream in = process.getInputStream();
+        OutputStream out = StreamCodecs.openOutput(outputFile, INTERMEDIATE_FILES_CODEC, true)) {
+      in.transferTo(out);
     }
     int exitCode = process.waitFor();
     LOGGER.info("Process collectFlowNodeInstances exited with code: " + exitCode);
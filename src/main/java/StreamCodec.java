@@ -0,0 +1,28 @@
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+
+/**
+ * Streaming compression format for intermediate files. Implementations are registered in {@link StreamCodecs}.
+ */
+public interface StreamCodec {
+
+  String name();
+
+  /**
+   * Returns true when the first bytes of the file are the magic header of this format.
+   */
+  boolean matches(byte[] header, int length);
+
+  OutputStream compress(OutputStream out) throws IOException;
+
+  InputStream decompress(InputStream in) throws IOException;
+
+  /**
+   * Returns true when the stream returned by {@link #decompress(InputStream)} already decompresses on other threads
+   * ahead of the reader.
+   */
+  default boolean decompressesInParallel() {
+    return false;
+  }
+}
@@ -0,0 +1,176 @@
+import net.jpountz.lz4.LZ4FrameOutputStream;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.zip.GZIPInputStream;
+import java.util.zip.GZIPOutputStream;
+
+/**
+ * Opens intermediate files through a {@link StreamCodec}. The codec used for reading is detected from the file header,
+ * files without known header are read as is.
+ *
+ * LZ4 frames written by `LZ4FrameOutputStream` consist of independent blocks prefixed with their size, so they are
+ * decompressed block-parallel, see {@link ParallelLz4FrameInputStream}. Gzip members can't be split without an index,
+ * gzip is decompressed in a separate thread ahead of the reader instead.
+ */
+public final class StreamCodecs {
+
+  public static final StreamCodec NONE = new NoneCodec();
+  public static final StreamCodec GZIP = new GzipCodec();
+  public static final StreamCodec LZ4 = new Lz4Codec();
+
+  private static final int HEADER_BYTES = 4;
+  private static final int BUFFER_BYTES = 1024 * 1024;
+  private static final int READ_AHEAD_BLOCKS = 8;
+  private static final List<StreamCodec> CODECS = new CopyOnWriteArrayList<>(List.of(GZIP, LZ4));
+
+  private StreamCodecs() {
+  }
+
+  public static void register(StreamCodec codec) {
+    CODECS.add(codec);
+  }
+
+  public static OutputStream openOutput(File file, StreamCodec codec, boolean append) throws IOException {
+    final OutputStream out = new BufferedOutputStream(new FileOutputStream(file, append), BUFFER_BYTES);
+    try {
+      return codec.compress(out);
+    } catch (IOException e) {
+      out.close();
+      throw e;
+    }
+  }
+
+  public static InputStream openInput(File file) throws IOException {
+    final BufferedInputStream in = new BufferedInputStream(new FileInputStream(file), BUFFER_BYTES);
+    try {
+      in.mark(HEADER_BYTES);
+      final byte[] header = in.readNBytes(HEADER_BYTES);
+      in.reset();
+      final StreamCodec codec = detect(header, header.length);
+      if (codec == NONE) {
+        return in;
+      }
+      if (codec.decompressesInParallel()) {
+        return codec.decompress(in);
+      }
+      return new ReadAheadInputStream(codec.decompress(in), BUFFER_BYTES, READ_AHEAD_BLOCKS);
+    } catch (IOException e) {
+      in.close();
+      throw e;
+    }
+  }
+
+  public static StreamCodec detect(File file) throws IOException {
+    try (InputStream in = new FileInputStream(file)) {
+      final byte[] header = in.readNBytes(HEADER_BYTES);
+      return detect(header, header.length);
+    }
+  }
+
+  private static StreamCodec detect(byte[] header, int length) {
+    for (StreamCodec codec : CODECS) {
+      if (codec.matches(header, length)) {
+        return codec;
+      }
+    }
+    return NONE;
+  }
+
+  private static boolean startsWith(byte[] header, int length, int... magic) {
+    if (length < magic.length) {
+      return false;
+    }
+    for (int i = 0; i < magic.length; i++) {
+      if ((header[i] & 0xff) != magic[i]) {
+        return false;
+      }
+    }
+    return true;
+  }
+
+  private static class NoneCodec implements StreamCodec {
+
+    @Override
+    public String name() {
+      return "none";
+    }
+
+    @Override
+    public boolean matches(byte[] header, int length) {
+      return false;
+    }
+
+    @Override
+    public OutputStream compress(OutputStream out) {
+      return out;
+    }
+
+    @Override
+    public InputStream decompress(InputStream in) {
+      return in;
+    }
+  }
+
+  private static class GzipCodec implements StreamCodec {
+
+    @Override
+    public String name() {
+      return "gzip";
+    }
+
+    @Override
+    public boolean matches(byte[] header, int length) {
+      return startsWith(header, length, 0x1f, 0x8b);
+    }
+
+    @Override
+    public OutputStream compress(OutputStream out) throws IOException {
+      return new GZIPOutputStream(out, BUFFER_BYTES);
+    }
+
+    @Override
+    public InputStream decompress(InputStream in) throws IOException {
+      // reads appended members as well
+      return new GZIPInputStream(in, BUFFER_BYTES);
+    }
+  }
+
+  private static class Lz4Codec implements StreamCodec {
+
+    @Override
+    public String name() {
+      return "lz4";
+    }
+
+    @Override
+    public boolean matches(byte[] header, int length) {
+      // frame magic number 0x184D2204, little endian
+      return startsWith(header, length, 0x04, 0x22, 0x4d, 0x18);
+    }
+
+    @Override
+    public OutputStream compress(OutputStream out) throws IOException {
+      return new LZ4FrameOutputStream(out);
+    }
+
+    @Override
+    public InputStream decompress(InputStream in) {
+      // reads appended frames as well
+      return new ParallelLz4FrameInputStream(in, Runtime.getRuntime().availableProcessors());
+    }
+
+    @Override
+    public boolean decompressesInParallel() {
+      return true;
+    }
+  }
+}